@@ -7,6 +7,17 @@
 
 // import lists and other data structures from the Java standard library
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 // PROBLEM 1
 
@@ -14,6 +25,12 @@ import java.util.*;
 interface Exp {
     double eval(); 	                       // Problem 1a
     List<Instr> compile(); 	               // Problem 1c
+
+    // Like compile, but a subtree reached more than once is computed once and then reloaded from a local slot
+    default List<Instr> compileShared() { return new SharedCompiler().compile(this); }
+
+    // Same result as eval, but independent subtrees of a large tree are evaluated in parallel
+    default double parallelEval() { return ParallelEval.eval(this); }
 }
 
 class Num implements Exp {
@@ -32,7 +49,13 @@ class Num implements Exp {
 		return l;
     }
 
-    public boolean equals(Object o) { return (o instanceof Num) && ((Num)o).val == this.val; }
+    // Compare the bits of the values so that equals agrees with hashCode (0.0 and -0.0 differ, NaN equals NaN)
+    public boolean equals(Object o) {
+    	return (o instanceof Num) &&
+    		Double.doubleToLongBits(((Num)o).val) == Double.doubleToLongBits(this.val);
+    }
+
+    public int hashCode() { return Double.hashCode(val); }
 
     public String toString() { return "" + val; }
 }
@@ -40,41 +63,447 @@ class Num implements Exp {
 class BinOp implements Exp {
     protected Exp left, right;
     protected Op op;
+    protected int hash;		// structural hash, computed once from the children's cached hashes
+    protected long size;	// number of nodes in the tree, counting shared subtrees once per use
+    protected boolean hasParent, shared;	// whether this is the child of at least one, or more than one, BinOp
+
+    // Trees up to this size are evaluated by plain recursion, which can be no deeper than the tree's size
+    static final long RECURSION_CUTOFF = 2048;
 
     // Constructor
     public BinOp(Exp left, Op op, Exp right) {
     	this.left = left;
     	this.op = op;
     	this.right = right;
+    	this.hash = 31 * (31 * left.hashCode() + op.ordinal()) + right.hashCode();
+    	long s = 1 + sizeOf(left) + sizeOf(right);
+    	// A DAG with a lot of sharing can stand for more nodes than a long can count
+    	this.size = s > 0 ? s : Long.MAX_VALUE;
+    	adopt(left);
+    	adopt(right);
+    }
+
+    // Notes that e has one more parent. Two threads making parents of the same node at once may miss
+    // that it is shared, which only makes comparing it slower.
+    static void adopt(Exp e) {
+    	if (e instanceof BinOp) {
+    		BinOp b = (BinOp) e;
+    		if (b.hasParent)
+    			b.shared = true;
+    		b.hasParent = true;
+    	}
+    }
+
+    // The number of nodes in e, treating anything other than a BinOp as a single node
+    static long sizeOf(Exp e) {
+    	return e instanceof BinOp ? ((BinOp) e).size : 1;
     }
 
     // Calculate the result of evaluating the left and right sides
     public double eval() {
-    	return op.calculate (left.eval(), right.eval());
+    	if (size <= RECURSION_CUTOFF)
+    		return op.calculate(left.eval(), right.eval());
+    	// For a big tree, recurse only into the smaller child of each node, which is at most half its size,
+    	// and follow the larger child in a loop; the call stack then stays O(log n) deep however deep the tree is
+    	List<BinOp> spine = new ArrayList<BinOp>();
+    	DoubleStack smaller = new DoubleStack();	// the value of the smaller child of each node on the spine
+    	Exp e = this;
+    	while (e instanceof BinOp && ((BinOp) e).size > RECURSION_CUTOFF) {
+    		BinOp b = (BinOp) e;
+    		boolean leftLarger = sizeOf(b.left) >= sizeOf(b.right);
+    		smaller.push((leftLarger ? b.right : b.left).eval());
+    		spine.add(b);
+    		e = leftLarger ? b.left : b.right;
+    	}
+    	double val = e.eval();
+    	// Combine back up the spine, applying each operator to its operands in their original order
+    	for (int i = spine.size() - 1; i >= 0; i--) {
+    		BinOp b = spine.get(i);
+    		double other = smaller.pop();
+    		val = sizeOf(b.left) >= sizeOf(b.right) ? b.op.calculate(val, other) : b.op.calculate(other, val);
+    	}
+    	return val;
     }
 
-    // Returns a list of the left side compiled, the right side compiled, and a Calculate for the operation
+    // Returns a list of the left side compiled, the right side compiled, and a Calculate for the operation,
+    // all emitted in one pass into a single list
     public List<Instr> compile() {
-    	List<Instr> l = new LinkedList<Instr>();
-		l.addAll(left.compile());
-		l.addAll(right.compile());
-		l.add(new Calculate(op));
-		return l;
+    	List<Instr> l = new ArrayList<Instr>();
+    	new ExpWalker() {
+    		void leaf(Exp e) {
+    			if (e instanceof Num)
+    				l.add(new Push(((Num) e).val));
+    			else
+    				l.addAll(e.compile());
+    		}
+    		void binOp(BinOp b) { l.add(new Calculate(b.op)); }
+    	}.walk(this);
+    	return l;
     }
 
     public boolean equals(Object o) {
+    	if (o == this)
+    		return true;
     	if(!(o instanceof BinOp))
     		return false;
-    	BinOp b = (BinOp) o;
-    	return this.left.equals(b.left) && this.op.equals(b.op) &&
-		    	this.right.equals(b.right);
+    	BinOp other = (BinOp) o;
+    	// Different hashes or sizes mean different structure
+    	if (hash != other.hash || size != other.size || !op.equals(other.op))
+    		return false;
+    	// Small trees are compared by plain recursion, which can be no deeper than their size
+    	if (size <= RECURSION_CUTOFF)
+    		return left.equals(other.left) && right.equals(other.right);
+    	// Compare corresponding pairs of subtrees, pushed two at a time
+    	Deque<Exp> pending = new ArrayDeque<Exp>();
+    	pending.push(this);
+    	pending.push(other);
+    	// Pairs already compared that include a shared node, so that two DAGs that share subtrees in the same
+    	// places are compared in time proportional to their number of nodes rather than the size of the trees
+    	// they stand for; a pair can only come up twice if one of its nodes, or of its ancestors, is shared
+    	HashSet<ExpPair> compared = null;
+    	while (!pending.isEmpty()) {
+    		Exp b = pending.pop();
+    		Exp a = pending.pop();
+    		if (a == b)
+    			continue;
+    		if (a instanceof BinOp) {
+    			if (!(b instanceof BinOp))
+    				return false;
+    			BinOp x = (BinOp) a;
+    			BinOp y = (BinOp) b;
+    			if (x.hash != y.hash || x.size != y.size || !x.op.equals(y.op))
+    				return false;
+    			if (x.shared || y.shared) {
+    				if (compared == null)
+    					compared = new HashSet<ExpPair>();
+    				if (!compared.add(new ExpPair(x, y)))
+    					continue;
+    			}
+    			pending.push(x.right);
+    			pending.push(y.right);
+    			pending.push(x.left);
+    			pending.push(y.left);
+    		}
+    		else if (!a.equals(b))
+    			return false;
+    	}
+    	return true;
     }
 
+    public int hashCode() { return hash; }
+
     public String toString() {
-		return "BinOp(" + left + ", " + op + ", " + right + ")";
+    	StringBuilder sb = new StringBuilder();
+    	// Holds the subtrees and operators still to be printed, in the order they should be printed
+    	Deque<Object> pending = new ArrayDeque<Object>();
+    	pending.push(this);
+    	while (!pending.isEmpty()) {
+    		Object x = pending.pop();
+    		if (x instanceof BinOp) {
+    			BinOp b = (BinOp) x;
+    			sb.append("BinOp(");
+    			pending.push(")");
+    			pending.push(b.right);
+    			pending.push(b.op);
+    			pending.push(b.left);
+    		}
+    		else if (x instanceof Op)
+    			sb.append(", ").append(x).append(", ");
+    		else
+    			sb.append(x);
+    	}
+    	return sb.toString();
     }
 }
 
+// evaluates an expression with Java's Fork/Join library, evaluating subtrees below the cutoff directly
+class ParallelEval extends RecursiveTask<Double> {
+	protected static long SEQUENTIAL_CUTOFF = 10000;
+	private Exp exp;
+
+	public ParallelEval(Exp exp) { this.exp = exp; }
+
+	public static double eval(Exp exp) {
+		return ForkJoinPool.commonPool().invoke(new ParallelEval(exp));
+	}
+
+	protected Double compute() {
+		// Follow the larger child down from the root, forking the smaller child whenever it is big enough.
+		// A forked subtree is at most half of its parent, so tasks are only nested O(log n) deep
+		// even when the tree itself is millions of nodes deep.
+		List<BinOp> spine = new ArrayList<BinOp>();
+		List<ParallelEval> forked = new ArrayList<ParallelEval>();
+		Exp e = exp;
+		// A leaf is evaluated directly whatever the cutoff
+		while (e instanceof BinOp && BinOp.sizeOf(e) >= SEQUENTIAL_CUTOFF) {
+			BinOp b = (BinOp) e;
+			boolean leftLarger = BinOp.sizeOf(b.left) >= BinOp.sizeOf(b.right);
+			Exp smaller = leftLarger ? b.right : b.left;
+			ParallelEval task = null;
+			if (BinOp.sizeOf(smaller) >= SEQUENTIAL_CUTOFF) {
+				task = new ParallelEval(smaller);
+				task.fork();
+			}
+			spine.add(b);
+			forked.add(task);
+			e = leftLarger ? b.left : b.right;
+		}
+		double val = e.eval();
+		// Combine back up the spine, applying each operator to its operands in their original order
+		for (int i = spine.size() - 1; i >= 0; i--) {
+			BinOp b = spine.get(i);
+			ParallelEval task = forked.get(i);
+			boolean leftLarger = BinOp.sizeOf(b.left) >= BinOp.sizeOf(b.right);
+			double other = task != null ? task.join() : (leftLarger ? b.right : b.left).eval();
+			val = leftLarger ? b.op.calculate(val, other) : b.op.calculate(other, val);
+		}
+		return val;
+	}
+}
+
+// a thread-safe cache of compiled programs and results, keyed by the structure of the expression so that
+// equal trees built by different callers share an entry; holds at most maxSize expressions and evicts
+// the least recently used one when full
+class ExpCache {
+	protected int maxSize;
+	protected LinkedHashMap<Exp, CachedExp> entries;
+	protected long hits, misses, evictions;
+
+	// Constructor
+	public ExpCache(int maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("cache size must be positive: " + maxSize);
+		this.maxSize = maxSize;
+		// An access-ordered map keeps the least recently used expression first
+		this.entries = new LinkedHashMap<Exp, CachedExp>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<Exp, CachedExp> eldest) {
+				if (size() <= ExpCache.this.maxSize)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	// Returns the compiled program for e, which callers must not modify
+	public List<Instr> compile(Exp e) {
+		synchronized (this) {
+			CachedExp c = entries.get(e);
+			if (c != null && c.program != null) {
+				hits++;
+				return c.program;
+			}
+			misses++;
+		}
+		// Compile without holding the lock; if another thread races us, both results are equal anyway
+		List<Instr> program = Collections.unmodifiableList(e.compile());
+		synchronized (this) {
+			entry(e).program = program;
+		}
+		return program;
+	}
+
+	public double eval(Exp e) {
+		synchronized (this) {
+			CachedExp c = entries.get(e);
+			if (c != null && c.value != null) {
+				hits++;
+				return c.value;
+			}
+			misses++;
+		}
+		double value = e.eval();
+		synchronized (this) {
+			entry(e).value = value;
+		}
+		return value;
+	}
+
+	public synchronized int size() { return entries.size(); }
+
+	public synchronized long hits() { return hits; }
+
+	public synchronized long misses() { return misses; }
+
+	public synchronized long evictions() { return evictions; }
+
+	// The entry for e, added if it is missing (the caller must hold the lock)
+	protected CachedExp entry(Exp e) {
+		CachedExp c = entries.get(e);
+		if (c == null) {
+			c = new CachedExp();
+			entries.put(e, c);
+		}
+		return c;
+	}
+}
+
+// what an ExpCache has computed so far for one expression
+class CachedExp {
+	protected List<Instr> program;
+	protected Double value;
+}
+
+// a pair of nodes, compared by identity
+class ExpPair {
+	protected Exp a, b;
+
+	ExpPair(Exp a, Exp b) {
+		this.a = a;
+		this.b = b;
+	}
+
+	public boolean equals(Object o) {
+		return (o instanceof ExpPair) && ((ExpPair)o).a == a && ((ExpPair)o).b == b;
+	}
+
+	public int hashCode() { return 31 * System.identityHashCode(a) + System.identityHashCode(b); }
+}
+
+// a postorder traversal of an expression tree that uses an explicit stack rather than recursion
+abstract class ExpWalker {
+	// Called for every node that is not a BinOp
+	abstract void leaf(Exp e);
+	// Called for a BinOp after both of its subtrees have been visited
+	abstract void binOp(BinOp b);
+	// Whether to visit the subtrees of a BinOp; if not, the BinOp is passed to leaf instead
+	boolean descend(BinOp b) { return true; }
+
+	void walk(Exp root) {
+		Exp[] nodes = new Exp[16];
+		boolean[] expanded = new boolean[16];	// whether the node's children have already been pushed
+		int top = 0;
+		nodes[top++] = root;
+		while (top > 0) {
+			Exp e = nodes[--top];
+			nodes[top] = null;
+			if (!(e instanceof BinOp))
+				leaf(e);
+			else if (expanded[top])
+				binOp((BinOp) e);
+			else if (!descend((BinOp) e))
+				leaf(e);
+			else {
+				if (top + 3 > nodes.length) {
+					nodes = Arrays.copyOf(nodes, nodes.length * 2);
+					expanded = Arrays.copyOf(expanded, expanded.length * 2);
+				}
+				BinOp b = (BinOp) e;
+				// Revisit this node once both subtrees are done; the left subtree is on top so it goes first
+				nodes[top] = b;
+				expanded[top++] = true;
+				nodes[top] = b.right;
+				expanded[top++] = false;
+				nodes[top] = b.left;
+				expanded[top++] = false;
+			}
+		}
+	}
+}
+
+// builds expressions through a table of every node it has made, so that structurally equal subtrees
+// are represented by one shared node and a tree with repeated parts becomes a DAG (not thread-safe)
+class ExpFactory {
+	protected Map<Exp, Exp> table = new HashMap<Exp, Exp>();
+
+	public Exp num(double val) {
+		return canonical(new Num(val));
+	}
+
+	public Exp binOp(Exp left, Op op, Exp right) {
+		return canonical(new BinOp(intern(left), op, intern(right)));
+	}
+
+	// Returns the shared node that is structurally equal to e, rebuilding e bottom-up where needed
+	public Exp intern(Exp e) {
+		Exp c = table.get(e);
+		if (c != null)
+			return c;
+		Deque<Exp> results = new ArrayDeque<Exp>();
+		// The shared node for each BinOp of e already interned, so a node e shares is only interned once
+		Map<Exp, Exp> done = new IdentityHashMap<Exp, Exp>();
+		new ExpWalker() {
+			void leaf(Exp e) { results.push(e instanceof BinOp ? done.get(e) : canonical(e)); }
+			void binOp(BinOp b) {
+				Exp r = results.pop();
+				Exp l = results.pop();
+				// Reuse b itself if its children were already the shared ones
+				Exp c = (l == b.left && r == b.right) ? canonical(b) : canonical(new BinOp(l, b.op, r));
+				done.put(b, c);
+				results.push(c);
+			}
+			boolean descend(BinOp b) { return !done.containsKey(b); }
+		}.walk(e);
+		return results.pop();
+	}
+
+	// Number of distinct nodes made so far
+	public int size() { return table.size(); }
+
+	// The children of e must already be shared nodes, so finding e in the table only compares them by identity
+	protected Exp canonical(Exp e) {
+		Exp c = table.putIfAbsent(e, e);
+		return c == null ? e : c;
+	}
+}
+
+// compiles an expression so that every subtree reached through more than one parent is computed only once:
+// its first occurrence is followed by Dup and Store, and every later occurrence becomes a Load
+class SharedCompiler {
+	public List<Instr> compile(Exp e) {
+		Map<Exp, Integer> uses = new IdentityHashMap<Exp, Integer>();	// number of parents of each BinOp
+		Map<Exp, Integer> slots = new IdentityHashMap<Exp, Integer>();	// local slot of each stored BinOp
+
+		// Count how often each BinOp is reached, only descending into it the first time
+		new ExpWalker() {
+			void leaf(Exp e) {}
+			void binOp(BinOp b) {}
+			boolean descend(BinOp b) { return uses.merge(b, 1, Integer::sum) == 1; }
+		}.walk(e);
+
+		List<Instr> l = new ArrayList<Instr>();
+		new ExpWalker() {
+			void leaf(Exp e) {
+				if (e instanceof BinOp)
+					l.add(new Load(slots.get(e)));
+				else if (e instanceof Num)
+					l.add(new Push(((Num) e).val));
+				else
+					l.addAll(e.compile());
+			}
+			void binOp(BinOp b) {
+				l.add(new Calculate(b.op));
+				if (uses.get(b) > 1) {
+					int slot = slots.size();
+					slots.put(b, slot);
+					l.add(new Dup());
+					l.add(new Store(slot));
+				}
+			}
+			boolean descend(BinOp b) { return !slots.containsKey(b); }
+		}.walk(e);
+		return l;
+	}
+}
+
+// a growable stack of unboxed doubles
+class DoubleStack {
+	protected double[] vals = new double[16];
+	protected int size = 0;
+
+	public void push(double d) {
+		if (size == vals.length)
+			vals = Arrays.copyOf(vals, size * 2);
+		vals[size++] = d;
+	}
+
+	public double pop() { return vals[--size]; }
+
+	public double peek() { return vals[size - 1]; }
+
+	public int size() { return size; }
+}
+
 // a representation of four arithmetic operators
 enum Op {
     PLUS { public double calculate(double a1, double a2) { return a1 + a2; } },
@@ -87,8 +516,8 @@ enum Op {
 
 // a type for arithmetic instructions
 interface Instr {
-	// Function that Instrs.execute can call to evaluate an Instr
-	Stack<Double> eval(Stack<Double> stack);
+	// Function that Instrs.execute can call to evaluate an Instr; locals are the program's local slots
+	Stack<Double> eval(Stack<Double> stack, double[] locals);
 }
 
 class Push implements Instr {
@@ -98,13 +527,19 @@ class Push implements Instr {
     public Push(double val) { this.val = val; }
 
     // Pushes the value onto the stack
-    public Stack<Double> eval(Stack<Double> stack)
+    public Stack<Double> eval(Stack<Double> stack, double[] locals)
     {
     	stack.push(val);
     	return stack;
     }
 
-	public boolean equals(Object o) { return (o instanceof Push) && ((Push)o).val == this.val; }
+	// Compare the bits of the values, like Num.equals
+	public boolean equals(Object o) {
+		return (o instanceof Push) &&
+			Double.doubleToLongBits(((Push)o).val) == Double.doubleToLongBits(this.val);
+	}
+
+	public int hashCode() { return Double.hashCode(val); }
 
     public String toString() {
 		return "Push " + val;
@@ -119,7 +554,7 @@ class Calculate implements Instr {
     Calculate(Op op) { this.op = op; }
 
     // Pops the top two elements of the stack, calculates the result of applying the operation, and pushes the result onto the stack
-    public Stack<Double> eval(Stack<Double> stack)
+    public Stack<Double> eval(Stack<Double> stack, double[] locals)
     {
     	double a = stack.pop();
     	double b = stack.pop();
@@ -130,26 +565,490 @@ class Calculate implements Instr {
     public boolean equals(Object o) { return (o instanceof Calculate) && 
     						  ((Calculate)o).op.equals(this.op); }
 
+    public int hashCode() { return 31 * Calculate.class.hashCode() + op.ordinal(); }
+
     public String toString() {
 		return "Calculate " + op;
     }    
 }
 
+// Duplicates the top of the stack
+class Dup implements Instr {
+    public Stack<Double> eval(Stack<Double> stack, double[] locals)
+    {
+    	stack.push(stack.peek());
+    	return stack;
+    }
+
+    public boolean equals(Object o) { return o instanceof Dup; }
+
+    public int hashCode() { return Dup.class.hashCode(); }
+
+    public String toString() {
+		return "Dup";
+    }
+}
+
+// Pops the top of the stack into a local slot
+class Store implements Instr {
+    protected int slot;
+
+    // Constructor
+    public Store(int slot) { this.slot = slot; }
+
+    public Stack<Double> eval(Stack<Double> stack, double[] locals)
+    {
+    	locals[slot] = stack.pop();
+    	return stack;
+    }
+
+    public boolean equals(Object o) { return (o instanceof Store) && ((Store)o).slot == this.slot; }
+
+    public int hashCode() { return 31 * Store.class.hashCode() + slot; }
+
+    public String toString() {
+		return "Store " + slot;
+    }
+}
+
+// Pushes the value of a local slot onto the stack
+class Load implements Instr {
+    protected int slot;
+
+    // Constructor
+    public Load(int slot) { this.slot = slot; }
+
+    public Stack<Double> eval(Stack<Double> stack, double[] locals)
+    {
+    	stack.push(locals[slot]);
+    	return stack;
+    }
+
+    public boolean equals(Object o) { return (o instanceof Load) && ((Load)o).slot == this.slot; }
+
+    public int hashCode() { return 31 * Load.class.hashCode() + slot; }
+
+    public String toString() {
+		return "Load " + slot;
+    }
+}
+
 class Instrs {
     protected List<Instr> instrs;
+    protected int numLocals;	// one more than the highest slot stored to
+    protected volatile ExecProfiler profiler;	// null unless profiling is on
+    protected volatile ExecProfile counts;	// what the program's instructions are, counted when first profiled
 
-    public Instrs(List<Instr> instrs) { this.instrs = instrs; }
+    public Instrs(List<Instr> instrs) {
+    	this.instrs = instrs;
+    	for (Instr i : instrs)
+    		if (i instanceof Store)
+    			numLocals = Math.max(numLocals, ((Store) i).slot + 1);
+    }
+
+    // Reports every later execution to profiler, or stops profiling if it is null
+    public void setProfiler(ExecProfiler profiler) {
+    	// Counted before profiler is published, so any execution that sees the profiler sees the counts too
+    	if (profiler != null && counts == null)
+    		counts = new ExecProfile(this);
+    	this.profiler = profiler;
+    }
 
 	// For every instruction, call its evaluate function
     public double execute() {
+    	ExecProfiler p = profiler;
+    	if (p != null)
+    		return profiledExecute(p);
     	Stack<Double> stack = new Stack<Double>();
+    	double[] locals = new double[numLocals];
     	for (Instr i : instrs)
     	{
-    		stack = i.eval(stack);
+    		stack = i.eval(stack, locals);
     	}
     	// The top of the stack contains a Num that evaluates to the result
     	return stack.peek();
     }
+
+    // Same as execute, but timed; kept apart so execute pays nothing for it. Every instruction runs exactly
+    // once, so the instructions and the stack depth are worked out once, outside the timed loop.
+    protected double profiledExecute(ExecProfiler p) {
+    	ExecProfile c = counts;
+    	// Only instructions of kinds we don't know have to be watched as they run
+    	if (c.peakDepth < 0)
+    		return watchedExecute(p, c);
+    	Stack<Double> stack = new Stack<Double>();
+    	double[] locals = new double[numLocals];
+    	long start = System.nanoTime();
+    	for (Instr i : instrs)
+    	{
+    		stack = i.eval(stack, locals);
+    	}
+    	long nanos = System.nanoTime() - start;
+    	p.record(c.run(c.peakDepth, nanos));
+    	return stack.peek();
+    }
+
+    // Same as profiledExecute, but measuring the stack depth after every instruction
+    protected double watchedExecute(ExecProfiler p, ExecProfile c) {
+    	Stack<Double> stack = new Stack<Double>();
+    	double[] locals = new double[numLocals];
+    	int peakDepth = 0;
+    	long start = System.nanoTime();
+    	for (Instr i : instrs)
+    	{
+    		stack = i.eval(stack, locals);
+    		peakDepth = Math.max(peakDepth, stack.size());
+    	}
+    	long nanos = System.nanoTime() - start;
+    	p.record(c.run(peakDepth, nanos));
+    	return stack.peek();
+    }
+}
+
+// the counts from one execution of a program, which must not be changed once made
+class ExecProfile {
+	// The kinds of instructions counted separately, and their indices in KINDS
+	static final String[] KINDS = { "Push", "Calculate", "Dup", "Store", "Load", "Other" };
+	static final int PUSH = 0, CALCULATE = 1, DUP = 2, STORE = 3, LOAD = 4, OTHER = 5;
+	// What an instruction of each kind does to the number of values on the stack
+	static final int[] STACK_EFFECT = { 1, -1, 1, -1, 1, 0 };
+
+	protected final Instrs program;
+	protected final long instructions;
+	protected final long[] kindCounts;	// instructions of each kind, by index in KINDS
+	protected final long[] opCounts;	// Calculates of each Op, by ordinal
+	protected final int peakDepth;		// the most values on the stack at once
+	protected final long nanos;
+
+	// Counts the instructions of program, and works out its peak depth from what each kind does to the
+	// stack, leaving it -1 if there are kinds whose effect isn't known
+	ExecProfile(Instrs program) {
+		long instructions = 0;
+		long[] kindCounts = new long[KINDS.length];
+		long[] opCounts = new long[Op.values().length];
+		int depth = 0, peakDepth = 0;
+		for (Instr i : program.instrs) {
+			instructions++;
+			int k = kind(i);
+			kindCounts[k]++;
+			if (k == CALCULATE)
+				opCounts[((Calculate) i).op.ordinal()]++;
+			if (k == OTHER || peakDepth < 0)
+				peakDepth = -1;
+			else {
+				depth += STACK_EFFECT[k];
+				peakDepth = Math.max(peakDepth, depth);
+			}
+		}
+		this.program = program;
+		this.instructions = instructions;
+		this.kindCounts = kindCounts;
+		this.opCounts = opCounts;
+		this.peakDepth = peakDepth;
+		this.nanos = 0;
+	}
+
+	// The same counts, for a run with the given peak depth and time
+	ExecProfile run(int peakDepth, long nanos) {
+		return new ExecProfile(program, instructions, kindCounts, opCounts, peakDepth, nanos);
+	}
+
+	protected ExecProfile(Instrs program, long instructions, long[] kindCounts, long[] opCounts,
+						  int peakDepth, long nanos) {
+		this.program = program;
+		this.instructions = instructions;
+		this.kindCounts = kindCounts;
+		this.opCounts = opCounts;
+		this.peakDepth = peakDepth;
+		this.nanos = nanos;
+	}
+
+	// The index in KINDS of i's kind
+	static int kind(Instr i) {
+		if (i instanceof Push) return PUSH;
+		if (i instanceof Calculate) return CALCULATE;
+		if (i instanceof Dup) return DUP;
+		if (i instanceof Store) return STORE;
+		if (i instanceof Load) return LOAD;
+		return OTHER;
+	}
+
+	public long opCount(Op op) { return opCounts[op.ordinal()]; }
+
+	public long instrCount(String kind) {
+		int k = Arrays.asList(KINDS).indexOf(kind);
+		return k < 0 ? 0 : kindCounts[k];
+	}
+
+	// The kinds that occur, with their counts
+	static String kindsToString(long[] counts) {
+		Map<String, Long> m = new TreeMap<String, Long>();
+		for (int k = 0; k < KINDS.length; k++)
+			if (counts[k] > 0)
+				m.put(KINDS[k], counts[k]);
+		return m.toString();
+	}
+
+	public String toString() {
+		return "ExecProfile(" + instructions + " instructions, " + kindsToString(kindCounts) +
+			   ", peak depth " + peakDepth + ", " + nanos + "ns)";
+	}
+}
+
+// something to tell about every profiled execution
+interface ProfileListener {
+	void executed(ExecProfile p);
+}
+
+// adds up the profiles of every execution of the programs it is set on; it can be shared by many programs
+// and threads, passes each profile on to its listeners, and can be read over JMX once registered
+class ExecProfiler {
+	protected LongAdder runs = new LongAdder();
+	protected LongAdder instructions = new LongAdder();
+	protected LongAdder nanos = new LongAdder();
+	protected LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+	protected LongAccumulator peakDepth = new LongAccumulator(Math::max, 0);
+	protected LongAdder[] kindCounts = adders(ExecProfile.KINDS.length);
+	protected LongAdder[] opCounts = adders(Op.values().length);
+	protected List<ProfileListener> listeners = new CopyOnWriteArrayList<ProfileListener>();
+
+	static LongAdder[] adders(int n) {
+		LongAdder[] a = new LongAdder[n];
+		for (int i = 0; i < n; i++)
+			a[i] = new LongAdder();
+		return a;
+	}
+
+	public void addListener(ProfileListener l) { listeners.add(l); }
+
+	public void removeListener(ProfileListener l) { listeners.remove(l); }
+
+	void record(ExecProfile p) {
+		runs.increment();
+		instructions.add(p.instructions);
+		nanos.add(p.nanos);
+		maxNanos.accumulate(p.nanos);
+		peakDepth.accumulate(p.peakDepth);
+		for (int i = 0; i < kindCounts.length; i++)
+			kindCounts[i].add(p.kindCounts[i]);
+		for (int i = 0; i < opCounts.length; i++)
+			opCounts[i].add(p.opCounts[i]);
+		for (ProfileListener l : listeners)
+			l.executed(p);
+	}
+
+	public long runs() { return runs.sum(); }
+
+	public long instructions() { return instructions.sum(); }
+
+	public long totalNanos() { return nanos.sum(); }
+
+	public long maxNanos() { return maxNanos.get(); }
+
+	public long peakDepth() { return peakDepth.get(); }
+
+	public long opCount(Op op) { return opCounts[op.ordinal()].sum(); }
+
+	public long instrCount(String kind) {
+		int k = Arrays.asList(ExecProfile.KINDS).indexOf(kind);
+		return k < 0 ? 0 : kindCounts[k].sum();
+	}
+
+	public String instrCounts() {
+		long[] counts = new long[kindCounts.length];
+		for (int k = 0; k < counts.length; k++)
+			counts[k] = kindCounts[k].sum();
+		return ExecProfile.kindsToString(counts);
+	}
+
+	public void reset() {
+		runs.reset();
+		instructions.reset();
+		nanos.reset();
+		maxNanos.reset();
+		peakDepth.reset();
+		for (LongAdder a : kindCounts)
+			a.reset();
+		for (LongAdder a : opCounts)
+			a.reset();
+	}
+
+	// Makes the totals readable over JMX under the given name, such as "calc:type=ExecProfiler"
+	public void register(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(new ExecProfilerMBean(this), new ObjectName(name));
+	}
+
+	public void unregister(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+	}
+}
+
+// the JMX view of an ExecProfiler: read-only totals, one count per Op, and a reset operation
+class ExecProfilerMBean implements DynamicMBean {
+	protected ExecProfiler profiler;
+
+	ExecProfilerMBean(ExecProfiler profiler) { this.profiler = profiler; }
+
+	public Object getAttribute(String name) throws AttributeNotFoundException {
+		switch (name) {
+			case "Runs": return profiler.runs();
+			case "Instructions": return profiler.instructions();
+			case "TotalNanos": return profiler.totalNanos();
+			case "MaxNanos": return profiler.maxNanos();
+			case "PeakStackDepth": return profiler.peakDepth();
+			case "InstrCounts": return profiler.instrCounts();
+		}
+		for (Op op : Op.values())
+			if (name.equals(op + "Count"))
+				return profiler.opCount(op);
+		throw new AttributeNotFoundException(name);
+	}
+
+	public AttributeList getAttributes(String[] names) {
+		AttributeList l = new AttributeList();
+		for (String name : names) {
+			try {
+				l.add(new Attribute(name, getAttribute(name)));
+			}
+			catch (AttributeNotFoundException e) {
+				// Attributes that don't exist are left out, as getAttributes allows
+			}
+		}
+		return l;
+	}
+
+	public void setAttribute(Attribute a) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException(a.getName() + " is read-only");
+	}
+
+	public AttributeList setAttributes(AttributeList l) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+		if (!action.equals("reset"))
+			throw new ReflectionException(new NoSuchMethodException(action));
+		profiler.reset();
+		return null;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attrs = new ArrayList<MBeanAttributeInfo>();
+		for (String name : new String[] { "Runs", "Instructions", "TotalNanos", "MaxNanos", "PeakStackDepth" })
+			attrs.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		for (Op op : Op.values())
+			attrs.add(new MBeanAttributeInfo(op + "Count", "long", "Calculates of " + op, true, false, false));
+		attrs.add(new MBeanAttributeInfo("InstrCounts", "java.lang.String", "Instructions of each kind",
+										 true, false, false));
+		MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Sets every count back to zero",
+														  new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+		return new MBeanInfo(ExecProfiler.class.getName(), "Instrs execution profile",
+							 attrs.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[] { reset }, null);
+	}
+}
+
+// generates expression trees of different shapes over the numbers 1 to n, cycling through the operators
+class ExpGen {
+	static final Op[] OPS = Op.values();
+
+	// A tree whose subtrees always split the numbers in half
+	static Exp balanced(int n) {
+		checkSize(n);
+		return balanced(1, n + 1);
+	}
+
+	static Exp balanced(int lo, int hi) {
+		if (hi - lo < 1)
+			throw new IllegalArgumentException("no numbers from " + lo + " to " + (hi - 1));
+		if (hi - lo == 1)
+			return new Num(lo);
+		int mid = (lo + hi) / 2;
+		return new BinOp(balanced(lo, mid), OPS[mid % OPS.length], balanced(mid, hi));
+	}
+
+	// ((1 * 2) / 3) + 4 ..., like a long generated formula
+	static Exp leftDeep(int n) {
+		checkSize(n);
+		Exp e = new Num(1);
+		for (int i = 2; i <= n; i++)
+			e = new BinOp(e, OPS[i % OPS.length], new Num(i));
+		return e;
+	}
+
+	// A left-deep chain of many independent balanced subtrees of 16 numbers each
+	static Exp wide(int n) {
+		checkSize(n);
+		Exp e = balanced(1, Math.min(n, 16) + 1);
+		for (int lo = 17; lo <= n; lo += 16)
+			e = new BinOp(e, OPS[lo % OPS.length], balanced(lo, Math.min(n + 1, lo + 16)));
+		return e;
+	}
+
+	// Every tree has at least one number in it
+	static void checkSize(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("tree size must be at least 1: " + n);
+	}
+}
+
+// a microbenchmark of the tree-walking evaluator against the stack machine; reports throughput and
+// bytes allocated per operation for eval, compile and execute over trees of several shapes and sizes
+// usage: java CalcBench [seconds per measurement] [sizes...]
+class CalcBench {
+	static volatile double sink;	// keeps the JIT from discarding results
+
+	public static void main(String[] args) {
+		double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 1.0;
+		int[] sizes = args.length > 1
+			? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+			: new int[] { 1000, 100000 };
+		for (int n : sizes)
+			if (n < 1) {
+				System.err.println("CalcBench: sizes must be at least 1, not " + n);
+				System.exit(1);
+			}
+		System.out.printf("%-10s %9s %-8s %14s %14s%n", "shape", "size", "bench", "ops/s", "bytes/op");
+		for (int n : sizes) {
+			Map<String, Exp> shapes = new LinkedHashMap<String, Exp>();
+			shapes.put("balanced", ExpGen.balanced(n));
+			shapes.put("leftDeep", ExpGen.leftDeep(n));
+			shapes.put("wide", ExpGen.wide(n));
+			for (Map.Entry<String, Exp> shape : shapes.entrySet()) {
+				Exp e = shape.getValue();
+				Instrs program = new Instrs(e.compile());
+				run(shape.getKey(), n, "eval", seconds, () -> sink = e.eval());
+				run(shape.getKey(), n, "compile", seconds, () -> sink = e.compile().size());
+				run(shape.getKey(), n, "execute", seconds, () -> sink = program.execute());
+			}
+		}
+	}
+
+	// Warms up for half the measurement time, then measures
+	static void run(String shape, int n, String bench, double seconds, Runnable op) {
+		measure(op, seconds / 2);
+		double[] result = measure(op, seconds);
+		System.out.printf("%-10s %9d %-8s %14.1f %14.0f%n", shape, n, bench, result[0], result[1]);
+	}
+
+	// Returns the operations per second and the bytes allocated per operation (-1 if the JVM can't tell)
+	static double[] measure(Runnable op, double seconds) {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocs = threads instanceof com.sun.management.ThreadMXBean
+			? (com.sun.management.ThreadMXBean) threads : null;
+		long id = Thread.currentThread().getId();
+		long bytes = allocs != null ? allocs.getThreadAllocatedBytes(id) : 0;
+		long ops = 0;
+		long start = System.nanoTime();
+		long end = start + (long) (seconds * 1e9);
+		long now;
+		do {
+			op.run();
+			ops++;
+			now = System.nanoTime();
+		} while (now < end);
+		bytes = allocs != null ? allocs.getThreadAllocatedBytes(id) - bytes : -ops;
+		return new double[] { ops / ((now - start) / 1e9), (double) bytes / ops };
+	}
 }
 
 class CalcTest {
@@ -271,6 +1170,198 @@ class CalcTest {
 		assert(exp3.compile().equals(is3));
 		assert(exp4.compile().equals(is4));
 
+		// Deep trees must not overflow the call stack //
+		// 1 + 2 + ... + n, nested to the left
+		int depth = 1000000;
+		Exp deep = new Num(1.0);
+		Exp deep2 = new Num(1.0);
+		for (int i = 2; i <= depth; i++) {
+			deep = new BinOp(deep, Op.PLUS, new Num(i));
+			deep2 = new BinOp(deep2, Op.PLUS, new Num(i));
+		}
+		assert(deep.eval() == (double) depth * (depth + 1) / 2);
+		List<Instr> deepInstrs = deep.compile();
+		assert(deepInstrs.size() == 2 * depth - 1);
+		assert(new Instrs(deepInstrs).execute() == deep.eval());
+		assert(deep.equals(deep2));
+		assert(!deep.equals(new BinOp(deep2, Op.PLUS, new Num(0.0))));
+		// 1 - (1 - (1 - ...)), nested to the right
+		Exp rdeep = new Num(1.0);
+		for (int i = 1; i < depth; i++)
+			rdeep = new BinOp(new Num(1.0), Op.MINUS, rdeep);
+		assert(rdeep.eval() == 0.0);
+		assert(new Instrs(rdeep.compile()).execute() == 0.0);
+		assert(rdeep.toString().startsWith("BinOp(1.0, MINUS, BinOp(1.0, MINUS, "));
+		// each BinOp prints as "BinOp(" + ", MINUS, " + ")" and each Num as "1.0"
+		assert(rdeep.toString().length() == (depth - 1) * 16 + depth * 3);
+		assert(exp4.toString().equals("BinOp(BinOp(5.0, MINUS, 3.0), MINUS, BinOp(BinOp(12.0, DIVIDE, 3.0), TIMES, 3.0))"));
+
+		// Hashing and sharing //
+		assert(deep.hashCode() == deep2.hashCode());
+		assert(!new Num(0.0).equals(new Num(-0.0)));
+		assert(!new Num(0.0).compile().equals(new Num(-0.0).compile()));
+		assert(new Calculate(Op.PLUS).hashCode() == new Calculate(Op.PLUS).hashCode());
+		Map<Exp, String> names = new HashMap<Exp, String>();
+		names.put(exp4, "exp4");
+		assert(names.get(new BinOp(new BinOp(new Num(5.0), Op.MINUS, new Num(3.0)), Op.MINUS,
+								   new BinOp(new BinOp(new Num(12.0), Op.DIVIDE, new Num(3.0)), Op.TIMES, new Num(3.0))))
+				.equals("exp4"));
+		ExpFactory f = new ExpFactory();
+		// (1 + 2) * (1 + 2)
+		BinOp sq = (BinOp) f.binOp(f.binOp(f.num(1.0), Op.PLUS, f.num(2.0)), Op.TIMES,
+								   f.binOp(f.num(1.0), Op.PLUS, f.num(2.0)));
+		assert(sq.left == sq.right);
+		assert(f.size() == 4);
+		List<Instr> isq = new LinkedList<Instr>();
+		isq.add(new Push(1.0));
+		isq.add(new Push(2.0));
+		isq.add(new Calculate(Op.PLUS));
+		isq.add(new Dup());
+		isq.add(new Store(0));
+		isq.add(new Load(0));
+		isq.add(new Calculate(Op.TIMES));
+		assert(sq.compileShared().equals(isq));
+		assert(new Instrs(isq).execute() == 9.0);
+		// Interning a tree that was built without the factory shares its repeated subtrees
+		BinOp sq2 = (BinOp) f.intern(new BinOp(new BinOp(new Num(1.0), Op.PLUS, new Num(2.0)), Op.TIMES,
+											   new BinOp(new Num(1.0), Op.PLUS, new Num(2.0))));
+		assert(sq2 == sq);
+		assert(f.intern(deep) != deep);
+		assert(f.intern(deep).equals(deep));
+		assert(new Instrs(deep.compileShared()).execute() == deep.eval());
+		assert(exp4.compileShared().equals(is4));
+		// x + x, doubled 100 times: a DAG of 101 nodes standing for a tree of 2^101 - 1 nodes
+		Exp dbl = f.num(1.0);
+		for (int i = 0; i < 100; i++)
+			dbl = f.binOp(dbl, Op.PLUS, dbl);
+		List<Instr> idbl = dbl.compileShared();
+		// Push, Push, Calculate, Dup, Store for the first level, then Load, Calculate, Dup, Store for each
+		// level but the root, which is not stored
+		assert(idbl.size() == 5 + 98 * 4 + 2);
+		assert(new Instrs(idbl).execute() == Math.pow(2, 100));
+		assert(((BinOp) dbl).size == Long.MAX_VALUE);
+		// The same DAG built by another factory is equal to it, and interning it takes one pass over its nodes
+		ExpFactory f2 = new ExpFactory();
+		Exp dbl2 = f2.num(1.0);
+		for (int i = 0; i < 100; i++)
+			dbl2 = f2.binOp(dbl2, Op.PLUS, dbl2);
+		assert(dbl2 != dbl && dbl2.equals(dbl) && dbl2.hashCode() == dbl.hashCode());
+		assert(f.intern(dbl2) == dbl);
+		assert(!dbl2.equals(f2.binOp(dbl2, Op.MINUS, dbl2)));
+		assert(new Dup().hashCode() == new Dup().hashCode() && new Store(3).hashCode() == new Store(3).hashCode());
+
+		// Profiling //
+		ExecProfiler prof = new ExecProfiler();
+		List<ExecProfile> profiles = new ArrayList<ExecProfile>();
+		prof.addListener(profiles::add);
+		instrs4.setProfiler(prof);
+		assert(instrs4.execute() == -10.0);
+		assert(profiles.size() == 1);
+		ExecProfile p4 = profiles.get(0);
+		assert(p4.program == instrs4 && p4.instructions == 9 && p4.peakDepth == 3);
+		assert(p4.opCount(Op.MINUS) == 2 && p4.opCount(Op.DIVIDE) == 1 && p4.opCount(Op.PLUS) == 0);
+		assert(p4.instrCount("Push") == 5 && p4.instrCount("Calculate") == 4 && p4.instrCount("Load") == 0);
+		instrs4.execute();
+		Instrs isqProgram = new Instrs(isq);
+		isqProgram.setProfiler(prof);
+		assert(isqProgram.execute() == 9.0);
+		assert(prof.runs() == 3 && prof.instructions() == 9 + 9 + 7 && prof.peakDepth() == 3);
+		assert(prof.opCount(Op.MINUS) == 4 && prof.opCount(Op.TIMES) == 3);
+		assert(prof.instrCount("Store") == 1 && prof.instrCount("Load") == 1 && prof.instrCount("Push") == 12);
+		// The depth of a program with an unknown kind of instruction is measured as it runs
+		List<Instr> isNeg = new ArrayList<Instr>(is);
+		isNeg.add((stack, locals) -> { stack.push(-stack.pop()); return stack; });
+		Instrs negProgram = new Instrs(isNeg);
+		negProgram.setProfiler(prof);
+		assert(negProgram.execute() == -9.0);
+		assert(profiles.get(profiles.size() - 1).peakDepth == 2);
+		assert(prof.instrCount("Other") == 1 && prof.runs() == 4);
+		prof.reset();
+		instrs4.execute();
+		instrs4.execute();
+		isqProgram.execute();
+		// Profiling can be read over JMX
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName profName = new ObjectName("calc:type=ExecProfiler");
+			prof.register("calc:type=ExecProfiler");
+			assert(server.getAttribute(profName, "Instructions").equals(25L));
+			assert(server.getAttribute(profName, "MINUSCount").equals(4L));
+			assert(server.getAttribute(profName, "InstrCounts").equals("{Calculate=10, Dup=1, Load=1, Push=12, Store=1}"));
+			server.invoke(profName, "reset", null, null);
+			assert(prof.runs() == 0 && prof.instrCount("Push") == 0);
+			prof.unregister("calc:type=ExecProfiler");
+		}
+		catch (JMException ex) {
+			throw new AssertionError(ex);
+		}
+		// Once it is off, nothing more is recorded
+		instrs4.setProfiler(null);
+		instrs4.execute();
+		assert(profiles.size() == 7 && prof.runs() == 0);
+
+		// Parallel evaluation //
+		assert(((BinOp) exp4).size == 9);
+		assert(exp4.parallelEval() == -10.0);
+		Exp bal = ExpGen.balanced(1 << 20);
+		assert(Double.doubleToLongBits(bal.parallelEval()) == Double.doubleToLongBits(bal.eval()));
+		assert(deep.parallelEval() == deep.eval());
+		assert(rdeep.parallelEval() == rdeep.eval());
+		long cutoff = ParallelEval.SEQUENTIAL_CUTOFF;
+		ParallelEval.SEQUENTIAL_CUTOFF = 3;
+		assert(Double.doubleToLongBits(bal.parallelEval()) == Double.doubleToLongBits(bal.eval()));
+		ParallelEval.SEQUENTIAL_CUTOFF = 1;
+		assert(new Num(2).parallelEval() == 2.0);
+		assert(exp4.parallelEval() == -10.0);
+		ParallelEval.SEQUENTIAL_CUTOFF = cutoff;
+
+		// Generated shapes //
+		assert(ExpGen.balanced(4).toString().equals("BinOp(BinOp(1.0, TIMES, 2.0), DIVIDE, BinOp(3.0, PLUS, 4.0))"));
+		assert(ExpGen.leftDeep(3).toString().equals("BinOp(BinOp(1.0, TIMES, 2.0), DIVIDE, 3.0)"));
+		assert(((BinOp) ExpGen.wide(100)).size == 199);
+		assert(ExpGen.balanced(1).equals(new Num(1.0)) && ExpGen.wide(1).equals(new Num(1.0)));
+		try {
+			ExpGen.balanced(0);
+			assert(false);
+		}
+		catch (IllegalArgumentException ex) {}
+		assert(new Instrs(ExpGen.wide(100).compile()).execute() == ExpGen.wide(100).eval());
+
+		// Caching //
+		ExpCache cache = new ExpCache(2);
+		assert(cache.compile(exp4).equals(is4));
+		assert(cache.misses() == 1);
+		// An equal tree built separately hits the same entry
+		Exp exp4b = new BinOp(new BinOp(new Num(5.0), Op.MINUS, new Num(3.0)), Op.MINUS,
+							  new BinOp(new BinOp(new Num(12.0), Op.DIVIDE, new Num(3.0)), Op.TIMES, new Num(3.0)));
+		assert(cache.compile(exp4b) == cache.compile(exp4));
+		assert(cache.hits() == 2);
+		assert(cache.eval(exp4b) == -10.0);
+		assert(cache.eval(exp4) == -10.0);
+		assert(cache.hits() == 3 && cache.misses() == 2);
+		assert(cache.eval(exp) == 9.0);
+		assert(cache.size() == 2 && cache.evictions() == 0);
+		// exp4 was used more recently than exp, so exp is the one evicted
+		cache.eval(exp4);
+		assert(cache.eval(exp1) == 6.0);
+		assert(cache.size() == 2 && cache.evictions() == 1);
+		long missesBefore = cache.misses();
+		cache.eval(exp4);
+		assert(cache.misses() == missesBefore);
+		cache.eval(exp);
+		assert(cache.misses() == missesBefore + 1);
+		try {
+			new ExpCache(0);
+			assert(false);
+		}
+		catch (IllegalArgumentException ex) {}
+		ExpCache shared = new ExpCache(100);
+		Exp[] exps = { exp, exp1, exp2, exp3, exp4 };
+		double[] expected = { 9.0, 6.0, 5.0, 42.0, -10.0 };
+		assert(java.util.stream.IntStream.range(0, 10000).parallel()
+				.allMatch(i -> shared.eval(exps[i % 5]) == expected[i % 5]));
+		assert(shared.hits() + shared.misses() == 10000 && shared.size() == 5);
+
 		// Problem 2a Tests //
 		ListStringSet a = new ListStringSet();
 		assert(a.size() == 0);
@@ -312,6 +1403,62 @@ class CalcTest {
         assert(t.contains("x"));
         assert(t.size() == 1);
 
+		// Problem 2a with a trie //
+		TrieStringSet tr = new TrieStringSet();
+		assert(tr.size() == 0);
+		assert(tr.contains("Bob") == false);
+		tr.add("Bob");
+		assert(tr.size() == 1);
+		tr.add("Anne");
+		assert(tr.toString().equals("Trie(Anne, Bob)"));
+		assert(tr.contains("Bob") == true);
+		assert(tr.contains("Anne") == true);
+		tr.add("Bob");
+		tr.add("Anne");
+		tr.add("Bill");
+		assert(tr.toString().equals("Trie(Anne, Bill, Bob)"));
+		assert(tr.contains("Frank") == false);
+		assert(tr.contains("B") == false && tr.contains("Bo") == false && tr.contains("Bobby") == false);
+		tr.add("Frank");
+		tr.add("B");
+		tr.add("");
+		assert(tr.toString().equals("Trie(, Anne, B, Bill, Bob, Frank)"));
+		assert(tr.size() == 6 && tr.contains("") && tr.contains("B"));
+		// Leaves share the empty child arrays
+		assert(tr.root.child('F').children == TrieNode.NO_CHILDREN && tr.root.child('B').count == 2);
+
+		StringSet tr2 = new TrieStringSet();
+		assert(!tr2.contains(""));
+		tr2.add("x");
+		tr2.add("x");
+		assert(tr2.contains("x"));
+		assert(tr2.size() == 1);
+
+		// Prefix queries //
+		String[] words = { "romane", "romanus", "romulus", "rubens", "ruber", "rubicon", "rubicundus", "rub" };
+		StringSet[] sets = { new TrieStringSet(), new ListStringSet() };
+		for (StringSet set : sets) {
+			for (String word : words)
+				set.add(word);
+			assert(set.prefixMatches("rom").equals(Arrays.asList("romane", "romanus", "romulus")));
+			assert(set.prefixMatches("rube").equals(Arrays.asList("rubens", "ruber")));
+			assert(set.prefixMatches("rub").equals(Arrays.asList("rub", "rubens", "ruber", "rubicon", "rubicundus")));
+			assert(set.prefixMatches("rubicundus").equals(Arrays.asList("rubicundus")));
+			assert(set.prefixMatches("rubicundusx").isEmpty());
+			assert(set.prefixMatches("rx").isEmpty());
+			assert(set.prefixMatches("").size() == 8);
+			assert(set.contains("rub") && !set.contains("ru") && !set.contains("rubicund"));
+		}
+		// Every element of a large trie is found, in the same order as the list keeps them
+		TrieStringSet big = new TrieStringSet();
+		for (int i = 0; i < 200000; i++)
+			big.add(Integer.toString(i * 7919 % 200000));
+		assert(big.size() == 200000 && big.contains("199999") && !big.contains("200000"));
+		assert(big.prefixMatches("19999").equals(Arrays.asList("19999", "199990", "199991", "199992", "199993",
+															   "199994", "199995", "199996", "199997", "199998",
+															   "199999")));
+		assert(big.prefixMatches("1999").size() == 111);
+
 		// Problem 2b Tests //
 		ListSet<String> b = new ListSet<String>((String s1, String s2) -> s1.compareTo(s2));
 		assert(b.size() == 0);
@@ -354,6 +1501,192 @@ class CalcTest {
 		assert(d.toString().equals("Element(-5, Element(0, Element(5, Empty)))"));
 		assert(d.size() == 3);
 		assert(d.contains(0) == true);
+
+		// Problem 2b with a balanced tree //
+		AVLSet<String> e = new AVLSet<String>((String s1, String s2) -> s1.compareTo(s2));
+		assert(e.size() == 0);
+		assert(e.contains("Bob") == false);
+		e.add("Bob");
+		assert(e.size() == 1);
+		e.add("Anne");
+		e.add("Bob");
+		e.add("Anne");
+		e.add("Bill");
+		assert(e.toString().equals("TreeBranch(TreeBranch(TreeEmpty, Anne, TreeEmpty), Bill, TreeBranch(TreeEmpty, Bob, TreeEmpty))"));
+		assert(e.contains("Bob") == true);
+		assert(e.contains("Anne") == true);
+		assert(e.contains("Frank") == false);
+		e.add("Frank");
+		assert(e.size() == 4);
+		assert(e.contains("Frank") == true);
+
+		Set<String> u = new AVLSet<String>((s1, s2) -> s2.compareTo(s1));
+		u.add("x");
+		u.add("x");
+		assert(u.contains("x"));
+		assert(u.size() == 1);
+
+		// Adding in order is the worst case for an unbalanced tree
+		AVLSet<Integer> g = new AVLSet<Integer>(Integer::compare);
+		for (int i = 0; i < 1000000; i++)
+			g.add(i);
+		assert(g.size() == 1000000);
+		assert(g.root.height() <= 1.45 * Math.log(1000000) / Math.log(2));
+		assert(g.contains(0) && g.contains(999999) && !g.contains(-1) && !g.contains(1000000));
+		// Older versions are unchanged by later adds, and adding an existing element changes nothing
+		TreeNode<Integer> before = g.root;
+		g.add(-1);
+		assert(before.size() == 1000000 && !before.contains(-1) && g.contains(-1));
+		before = g.root;
+		g.add(500000);
+		assert(g.root == before);
+
+		// Long lists must not overflow the call stack //
+		ListSet<Integer> h = new ListSet<Integer>(Integer::compare);
+		ListStringSet hs = new ListStringSet();
+		// Adding in descending order puts each element at the front
+		for (int i = 1000000; i > 0; i--) {
+			h.add(i);
+			hs.add(String.format("%07d", i));
+		}
+		assert(h.size() == 1000000 && hs.size() == 1000000);
+		assert(h.contains(1000000) && !h.contains(1000001));
+		assert(hs.contains("1000000") && !hs.contains("1000001"));
+		h.add(1000001);
+		hs.add("1000001");
+		assert(h.size() == 1000001 && h.contains(1000001));
+		assert(hs.size() == 1000001 && hs.contains("1000001"));
+		assert(h.toString().contains("Element(1000000, Element(1000001, Empty)))"));
+		assert(hs.toString().startsWith("SElement(0000001, SElement(0000002, "));
+		// Adding an element that is already there copies nothing
+		Node<Integer> hHead = h.head;
+		h.add(999999);
+		assert(h.head == hHead);
+
+		// Bulk operations //
+		ListSet<String> v = new ListSet<String>((String s1, String s2) -> s1.compareTo(s2));
+		v.add("Anne");
+		v.add("Bob");
+		v.add("Frank");
+		AVLSet<String> w = new AVLSet<String>((String s1, String s2) -> s1.compareTo(s2));
+		w.add("Bill");
+		w.add("Bob");
+		w.add("Zoe");
+		assert(v.union(w).toString().equals("Element(Anne, Element(Bill, Element(Bob, Element(Frank, Element(Zoe, Empty)))))"));
+		assert(v.intersection(w).toString().equals("Element(Bob, Empty)"));
+		assert(v.difference(w).toString().equals("Element(Anne, Element(Frank, Empty))"));
+		assert(w.union(v).size() == 5 && w.union(v).root.height() == 3);
+		assert(w.intersection(v).toString().equals("TreeBranch(TreeEmpty, Bob, TreeEmpty)"));
+		assert(w.difference(v).toString().equals("TreeBranch(TreeBranch(TreeEmpty, Bill, TreeEmpty), Zoe, TreeEmpty)"));
+		// c keeps the reverse order, so its elements are sorted before merging
+		assert(v.union(c).toString().equals("Element(Anne, Element(Bill, Element(Bob, Element(Frank, Empty))))"));
+		assert(c.difference(v).toString().equals("Element(Bill, Empty)"));
+		v.addAll(w);
+		assert(v.size() == 5 && v.contains("Zoe"));
+		w.addAll(c);
+		assert(w.size() == 5 && w.contains("Anne") && w.contains("Frank"));
+		// Merging two large lists takes one pass over each instead of an add per element
+		ListSet<Integer> odd = new ListSet<Integer>(Integer::compare);
+		for (int i = 999999; i > 0; i -= 2)
+			odd.add(i);
+		assert(h.union(odd).size() == 1000001);
+		assert(h.intersection(odd).size() == 500000);
+		assert(h.difference(odd).size() == 500001);
+		odd.addAll(h);
+		assert(odd.size() == 1000001);
+
+		// Concurrent adds //
+		ConcurrentAVLSet<Integer> cs = new ConcurrentAVLSet<Integer>(Integer::compare);
+		// Every element is added twice, by whichever threads get to it
+		java.util.stream.IntStream.range(0, 400000).parallel().forEach(i -> cs.add(i / 2));
+		assert(cs.size() == 200000);
+		AVLSet<Integer> snap = cs.snapshot();
+		java.util.stream.IntStream.range(200000, 300000).parallel().forEach(cs::add);
+		cs.addAll(odd);
+		// A bulk add racing single adds still gets everything in
+		ConcurrentAVLSet<Integer> race = new ConcurrentAVLSet<Integer>(Integer::compare);
+		Thread adder = new Thread(() -> { for (int i = -1; i > -100000; i--) race.add(i); });
+		adder.start();
+		for (int r = 0; r < 5; r++)
+			race.addAll(odd);
+		try {
+			adder.join();
+		}
+		catch (InterruptedException ex) {
+			throw new AssertionError(ex);
+		}
+		assert(race.size() == odd.size() + 99999);
+		assert(snap.size() == 200000 && !snap.contains(250000));
+		assert(cs.size() == 1000002 && cs.contains(250000));
+		assert(cs.intersection(snap).size() == 200000);
+
+		// Iteration and streams //
+		List<String> seen = new ArrayList<String>();
+		for (String str : b)
+			seen.add(str);
+		assert(seen.equals(Arrays.asList("Anne", "Bill", "Bob", "Frank")));
+		seen.clear();
+		c.iterator().forEachRemaining(seen::add);
+		assert(seen.equals(Arrays.asList("Frank", "Bob", "Bill", "Anne")));
+		assert(e.stream().collect(java.util.stream.Collectors.toList()).equals(Arrays.asList("Anne", "Bill", "Bob", "Frank")));
+		assert(a.stream().collect(java.util.stream.Collectors.toList()).equals(Arrays.asList("Anne", "Bill", "Bob", "Frank")));
+		assert(tr.stream().collect(java.util.stream.Collectors.toList())
+				.equals(Arrays.asList("", "Anne", "B", "Bill", "Bob", "Frank")));
+		assert(big.stream().collect(java.util.stream.Collectors.toList()).equals(big.prefixMatches("")));
+		Spliterator<String> sp = c.spliterator();
+		assert(sp.hasCharacteristics(Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.ORDERED | Spliterator.SIZED));
+		assert(sp.getComparator() == c.comparator());
+		assert(a.spliterator().getComparator() == null);
+		// Splitting gives exact sizes that add up, with the first half split off
+		Spliterator<Integer> gs = g.spliterator();
+		Spliterator<Integer> gPrefix = gs.trySplit();
+		assert(gPrefix.getExactSizeIfKnown() + gs.getExactSizeIfKnown() == g.size());
+		assert(gPrefix.tryAdvance(i -> { assert(i == -1); }));
+		assert(gs.tryAdvance(i -> { assert(i == 499999); }));
+		Spliterator<Integer> hs2 = h.spliterator();
+		Spliterator<Integer> hPrefix = hs2.trySplit();
+		assert(hPrefix.estimateSize() == 500000 && hs2.estimateSize() == 500001);
+		assert(hs2.tryAdvance(i -> { assert(i == 500001); }));
+		// Parallel streams see every element exactly once
+		long total = 1000000L * 1000001 / 2;
+		assert(g.stream().parallel().mapToLong(i -> i).sum() == total - 1000000 - 1);
+		assert(h.stream().parallel().mapToLong(i -> i).sum() == total + 1000001);
+		assert(cs.stream().parallel().count() == cs.size());
+		assert(g.stream().parallel().skip(10).findFirst().get() == 9);
+		// Iterating over a concurrent set sees a snapshot
+		Iterator<Integer> csIt = cs.iterator();
+		cs.add(-1);
+		assert(csIt.next() == 0);
+
+		// Primitive sets //
+		HashIntSet is5 = new HashIntSet();
+		assert(is5.size() == 0 && !is5.contains(0));
+		is5.add(0);
+		is5.add(-5);
+		assert(is5.contains(5) == false);
+		is5.add(5);
+		is5.add(5);
+		is5.add(0);
+		is5.add(Integer.MIN_VALUE);
+		is5.add(Integer.MAX_VALUE);
+		assert(is5.toString().equals("[-2147483648, -5, 0, 5, 2147483647]"));
+		assert(is5.size() == 5 && is5.contains(0) && is5.contains(Integer.MIN_VALUE));
+		IntSet many = new HashIntSet();
+		for (int i = 0; i < 3000000; i += 3)
+			many.add(i);
+		assert(many.size() == 1000000 && many.contains(2999997) && !many.contains(2999998));
+		LongSet ls = new HashLongSet();
+		for (long l = 0; l < 1000000; l++)
+			ls.add(l << 32);
+		assert(ls.size() == 1000000 && ls.contains(999999L << 32) && !ls.contains(1L << 31));
+		HashDoubleSet ds = new HashDoubleSet();
+		ds.add(0.0);
+		ds.add(-0.0);
+		ds.add(Double.NaN);
+		ds.add(0.0 / 0.0);
+		ds.add(1.5);
+		assert(ds.size() == 4 && ds.contains(Double.NaN) && ds.contains(-0.0) && !ds.contains(2.0));
+		assert(ds.toString().equals("[-0.0, 0.0, 1.5, NaN]"));
     }
 }
 
@@ -361,10 +1694,16 @@ class CalcTest {
 // PROBLEM 2
 
 // the type for a set of strings
-interface StringSet {
+interface StringSet extends Iterable<String> {
     int size();
     boolean contains(String s);
     void add(String s);
+    List<String> prefixMatches(String prefix);	// the elements that start with prefix, in order
+
+    // Iterates over the elements in order
+    Iterator<String> iterator();
+
+    default Stream<String> stream() { return StreamSupport.stream(spliterator(), false); }
 }
 
 // an implementation of StringSet using a linked list
@@ -389,6 +1728,25 @@ class ListStringSet implements StringSet {
     	head = head.add(s);
     }
 
+    public Iterator<String> iterator() {
+    	return Spliterators.iterator(spliterator());
+    }
+
+    public Spliterator<String> spliterator() {
+    	return new SElementSpliterator(head, head.size());
+    }
+
+    // The matches are next to each other in the list, starting at the first element that isn't smaller
+    public List<String> prefixMatches(String prefix) {
+    	List<String> l = new ArrayList<String>();
+    	SNode n = head;
+    	while (n instanceof SElement && ((SElement) n).elem.compareTo(prefix) < 0)
+    		n = ((SElement) n).next;
+    	for (; n instanceof SElement && ((SElement) n).elem.startsWith(prefix); n = ((SElement) n).next)
+    		l.add(((SElement) n).elem);
+    	return l;
+    }
+
     public String toString() {
     	return head.toString();
     }
@@ -423,54 +1781,142 @@ class SEmpty implements SNode {
 class SElement implements SNode {
     protected String elem;
     protected SNode next;
+    protected int size;		// cached, since the rest of the list never changes
 
     SElement(String elem, SNode next) {
     	this.elem = elem;
     	this.next = next; 
+    	this.size = 1 + next.size();
     }
 
-    // For every Element, getSize will add 1, for the Empty node, getSize will add 0
     public int size() {
-		return 1 + next.size();
+		return size;
     }
 
 	public boolean contains(String s) {
-		int num = elem.compareTo(s);
-		// If the strings are the same, the set contains the string
-		if (num == 0)
-			return true;
-		// If s is smaller, it can't be in the list because it would have been found by now
-		else if (num > 0)
-			return false;
-		// If s is greater, it could still be in the list
-		else
-			return next.contains(s);
+		SNode n = this;
+		while (n instanceof SElement) {
+			int num = ((SElement) n).elem.compareTo(s);
+			// If the strings are the same, the set contains the string
+			if (num == 0)
+				return true;
+			// If s is smaller, it can't be in the list because it would have been found by now
+			else if (num > 0)
+				return false;
+			// If s is greater, it could still be in the list
+			n = ((SElement) n).next;
+		}
+		return false;
 	}    
 
 	public SNode add(String s) {
-		int num = elem.compareTo(s);
+		// Find the first node that isn't smaller than s, remembering the ones before it
+		List<String> before = new ArrayList<String>();
+		SNode n = this;
+		while (n instanceof SElement && ((SElement) n).elem.compareTo(s) < 0) {
+			before.add(((SElement) n).elem);
+			n = ((SElement) n).next;
+		}
 		// If the strings are the same, don't add it
-		if (num == 0)
+		if (n instanceof SElement && ((SElement) n).elem.equals(s))
 			return this;
-		// If s is smaller, add s before the current node
-		else if (num > 0)
-			return new SElement(s, this);
-		// If s is greater, continue traversing the list
-		else
-			return new SElement(elem, next.add(s));
+		// Otherwise put s in front of that node and copy the nodes before it
+		SNode l = new SElement(s, n);
+		for (int i = before.size() - 1; i >= 0; i--)
+			l = new SElement(before.get(i), l);
+		return l;
 	}
 
     public String toString() {
-		return "SElement(" + elem + ", " + next.toString() + ")";
+    	StringBuilder sb = new StringBuilder();
+    	SNode n = this;
+    	for (; n instanceof SElement; n = ((SElement) n).next)
+    		sb.append("SElement(").append(((SElement) n).elem).append(", ");
+    	sb.append(n);
+    	for (int i = 0; i < size; i++)
+    		sb.append(")");
+		return sb.toString();
 	}
 }
 
 
 // Problem 2b
-interface Set<T> {
+interface Set<T> extends Iterable<T> {
 	int size();
     boolean contains(T t);
     void add(T t);
+
+    // The order the set keeps its elements in
+    Comparator<T> comparator();
+    // Calls action on every element, in order
+    void forEach(Consumer<? super T> action);
+
+    // Iterates over the elements in order
+    Iterator<T> iterator();
+    // Splits the elements into ordered ranges of known size, for parallel streams
+    Spliterator<T> spliterator();
+
+    default Stream<T> stream() { return StreamSupport.stream(spliterator(), false); }
+
+    // Bulk operations, which merge the elements of the two sets in one pass over each
+    void addAll(Set<T> other);
+    Set<T> union(Set<T> other);
+    Set<T> intersection(Set<T> other);
+    Set<T> difference(Set<T> other);
+}
+
+// merges of the sorted, duplicate-free element lists of two sets
+class SortedMerge {
+	// The elements of s in the order of comp, only sorting them if s keeps a different order
+	static <T> List<T> elements(Set<T> s, Comparator<T> comp) {
+		List<T> l = new ArrayList<T>(s.size());
+		s.forEach(l::add);
+		// Comparators written separately for the same order are different objects, so check the elements
+		// themselves: if they are already strictly increasing, they are sorted and distinct
+		boolean increasing = true;
+		for (int i = 1; i < l.size() && increasing; i++)
+			increasing = comp.compare(l.get(i - 1), l.get(i)) < 0;
+		if (increasing)
+			return l;
+		l.sort(comp);
+		// Elements that were distinct in s's order might be equal in this one
+		List<T> d = new ArrayList<T>(l.size());
+		for (T t : l)
+			if (d.isEmpty() || comp.compare(d.get(d.size() - 1), t) != 0)
+				d.add(t);
+		return d;
+	}
+
+	// Keeps the elements found only in a, only in b, or in both, depending on the flags
+	static <T> List<T> merge(List<T> a, List<T> b, Comparator<T> comp,
+							 boolean onlyA, boolean onlyB, boolean both) {
+		List<T> result = new ArrayList<T>();
+		int i = 0, j = 0;
+		while (i < a.size() && j < b.size()) {
+			int num = comp.compare(a.get(i), b.get(j));
+			if (num < 0) {
+				if (onlyA)
+					result.add(a.get(i));
+				i++;
+			}
+			else if (num > 0) {
+				if (onlyB)
+					result.add(b.get(j));
+				j++;
+			}
+			else {
+				if (both)
+					result.add(a.get(i));
+				i++;
+				j++;
+			}
+		}
+		if (onlyA)
+			result.addAll(a.subList(i, a.size()));
+		if (onlyB)
+			result.addAll(b.subList(j, b.size()));
+		return result;
+	}
 }
 
 class ListSet<T> implements Set<T> {
@@ -496,6 +1942,49 @@ class ListSet<T> implements Set<T> {
     	head = head.add(t);
     }
 
+    public Comparator<T> comparator() {
+    	return comp;
+    }
+
+    public void forEach(Consumer<? super T> action) {
+    	for (Node<T> n = head; n instanceof Element; n = ((Element<T>) n).next)
+    		action.accept(((Element<T>) n).elem);
+    }
+
+    public Iterator<T> iterator() {
+    	return Spliterators.iterator(spliterator());
+    }
+
+    public Spliterator<T> spliterator() {
+    	return new ElementSpliterator<T>(head, head.size(), comp);
+    }
+
+    public void addAll(Set<T> other) {
+    	head = union(other).head;
+    }
+
+    public ListSet<T> union(Set<T> other) {
+    	return merge(other, true, true, true);
+    }
+
+    public ListSet<T> intersection(Set<T> other) {
+    	return merge(other, false, false, true);
+    }
+
+    public ListSet<T> difference(Set<T> other) {
+    	return merge(other, true, false, false);
+    }
+
+    protected ListSet<T> merge(Set<T> other, boolean onlyThis, boolean onlyOther, boolean both) {
+    	List<T> l = SortedMerge.merge(SortedMerge.elements(this, comp), SortedMerge.elements(other, comp),
+    								  comp, onlyThis, onlyOther, both);
+    	// Build the new list from the back
+    	ListSet<T> s = new ListSet<T>(comp);
+    	for (int i = l.size() - 1; i >= 0; i--)
+    		s.head = new Element<T>(l.get(i), s.head, comp);
+    	return s;
+    }
+
     public String toString() {
     	return head.toString();
     }
@@ -531,49 +2020,903 @@ class Empty<T> implements Node<T> {
 	}
 }
 
+// a spliterator over part of a sorted linked list, which splits off the first half of its part;
+// the lists never change, so it sees the set as it was when it was made
+abstract class ListSpliterator<N, T> implements Spliterator<T> {
+	protected N node;			// the next node to visit
+	protected int remaining;	// the number of elements from node on that belong to this spliterator
+
+	ListSpliterator(N node, int remaining) {
+		this.node = node;
+		this.remaining = remaining;
+	}
+
+	abstract T elem(N n);
+	abstract N next(N n);
+	// A spliterator for count elements starting at n
+	abstract ListSpliterator<N, T> part(N n, int count);
+
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if (remaining == 0)
+			return false;
+		action.accept(elem(node));
+		node = next(node);
+		remaining--;
+		return true;
+	}
+
+	public void forEachRemaining(Consumer<? super T> action) {
+		for (; remaining > 0; remaining--) {
+			action.accept(elem(node));
+			node = next(node);
+		}
+	}
+
+	public Spliterator<T> trySplit() {
+		if (remaining < 2)
+			return null;
+		int half = remaining / 2;
+		N start = node;
+		for (int i = 0; i < half; i++)
+			node = next(node);
+		remaining -= half;
+		return part(start, half);
+	}
+
+	public long estimateSize() { return remaining; }
+
+	public int characteristics() {
+		return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | IMMUTABLE;
+	}
+}
+
+class ElementSpliterator<T> extends ListSpliterator<Node<T>, T> {
+	protected Comparator<T> comp;
+
+	ElementSpliterator(Node<T> node, int remaining, Comparator<T> comp) {
+		super(node, remaining);
+		this.comp = comp;
+	}
+
+	T elem(Node<T> n) { return ((Element<T>) n).elem; }
+
+	Node<T> next(Node<T> n) { return ((Element<T>) n).next; }
+
+	ListSpliterator<Node<T>, T> part(Node<T> n, int count) { return new ElementSpliterator<T>(n, count, comp); }
+
+	public Comparator<? super T> getComparator() { return comp; }
+}
+
+class SElementSpliterator extends ListSpliterator<SNode, String> {
+	SElementSpliterator(SNode node, int remaining) {
+		super(node, remaining);
+	}
+
+	String elem(SNode n) { return ((SElement) n).elem; }
+
+	SNode next(SNode n) { return ((SElement) n).next; }
+
+	ListSpliterator<SNode, String> part(SNode n, int count) { return new SElementSpliterator(n, count); }
+
+	// Strings are in their natural order
+	public Comparator<? super String> getComparator() { return null; }
+
+	public int characteristics() { return super.characteristics() | NONNULL; }
+}
+
 class Element<T> implements Node<T> {
 	protected T elem;
     protected Node<T> next;
     protected Comparator<T> comp;
+    protected int size;		// cached, since the rest of the list never changes
 
 	Element(T elem, Node<T> next, Comparator<T> comp) {
     	this.elem = elem;
     	this.next = next; 
     	this.comp = comp;
+    	this.size = 1 + next.size();
     }
 
-    // For every Element, getSize will add 1, for the Empty node, getSize will add 0
     public int size() {
-		return 1 + next.size();
+		return size;
     }
 
 	public boolean contains(T t) {
-		int num = comp.compare(elem, t);
-		// If the strings are the same, the set contains the string
-		if (num == 0)
-			return true;
-		// If s is smaller, it can't be in the list because it would have been found by now
-		else if (num > 0)
-			return false;
-		// If s is greater, it could still be in the list
-		else
-			return next.contains(t);
+		Node<T> n = this;
+		while (n instanceof Element) {
+			int num = comp.compare(((Element<T>) n).elem, t);
+			// If the elements are the same, the set contains the element
+			if (num == 0)
+				return true;
+			// If t is smaller, it can't be in the list because it would have been found by now
+			else if (num > 0)
+				return false;
+			// If t is greater, it could still be in the list
+			n = ((Element<T>) n).next;
+		}
+		return false;
 	}    
 
 	public Node<T> add(T t) {
+		// Find the first node that isn't smaller than t, remembering the ones before it
+		List<T> before = new ArrayList<T>();
+		Node<T> n = this;
+		int num = -1;
+		while (n instanceof Element && (num = comp.compare(((Element<T>) n).elem, t)) < 0) {
+			before.add(((Element<T>) n).elem);
+			n = ((Element<T>) n).next;
+		}
+		// If the elements are the same, don't add it
+		if (n instanceof Element && num == 0)
+			return this;
+		// Otherwise put t in front of that node and copy the nodes before it
+		Node<T> l = new Element<T>(t, n, comp);
+		for (int i = before.size() - 1; i >= 0; i--)
+			l = new Element<T>(before.get(i), l, comp);
+		return l;
+	}
+
+    public String toString() {
+    	StringBuilder sb = new StringBuilder();
+    	Node<T> n = this;
+    	for (; n instanceof Element; n = ((Element<T>) n).next)
+    		sb.append("Element(").append(((Element<T>) n).elem).append(", ");
+    	sb.append(n);
+    	for (int i = 0; i < size; i++)
+    		sb.append(")");
+		return sb.toString();
+	}
+}
+
+
+// an implementation of Set<T> using a persistent AVL tree: like ListSet, add returns a new version of the
+// tree, but it only copies the O(log n) nodes on the path to the new element and shares the rest
+class AVLSet<T> implements Set<T> {
+	protected TreeNode<T> root;
+	protected Comparator<T> comp;
+
+	// Constructor
+	AVLSet(Comparator<T> comp) {
+		root = new TreeEmpty<T>(comp);
+		this.comp = comp;
+	}
+
+	// A set starting from an existing version of a tree, which it shares
+	AVLSet(TreeNode<T> root, Comparator<T> comp) {
+		this.root = root;
+		this.comp = comp;
+	}
+
+	public int size() {
+		return root.size();
+	}
+
+	public boolean contains(T t) {
+		return root.contains(t);
+	}
+
+	public void add(T t) {
+		root = root.add(t);
+	}
+
+	public Comparator<T> comparator() {
+		return comp;
+	}
+
+	// Visits the elements in order, keeping the path back up to the root on an explicit stack
+	public void forEach(Consumer<? super T> action) {
+		Deque<TreeBranch<T>> path = new ArrayDeque<TreeBranch<T>>();
+		TreeNode<T> n = root;
+		while (n instanceof TreeBranch || !path.isEmpty()) {
+			if (n instanceof TreeBranch) {
+				path.push((TreeBranch<T>) n);
+				n = ((TreeBranch<T>) n).left;
+			}
+			else {
+				TreeBranch<T> b = path.pop();
+				action.accept(b.elem);
+				n = b.right;
+			}
+		}
+	}
+
+	public Iterator<T> iterator() {
+		return Spliterators.iterator(spliterator());
+	}
+
+	public Spliterator<T> spliterator() {
+		return new TreeSpliterator<T>(root, 0, root.size(), comp);
+	}
+
+	// Whether adding m elements to a tree of n one at a time beats merging and rebuilding the whole tree:
+	// m adds take O(m log n) against O(n + m) for the merge
+	static boolean addSeparately(int n, int m) {
+		return (double) m * Math.log(n + 2) / Math.log(2) < n + m;
+	}
+
+	public void addAll(Set<T> other) {
+		if (addSeparately(size(), other.size()))
+			other.forEach(this::add);
+		else
+			root = union(other).root;
+	}
+
+	public AVLSet<T> union(Set<T> other) {
+		return merge(other, true, true, true);
+	}
+
+	public AVLSet<T> intersection(Set<T> other) {
+		return merge(other, false, false, true);
+	}
+
+	public AVLSet<T> difference(Set<T> other) {
+		return merge(other, true, false, false);
+	}
+
+	protected AVLSet<T> merge(Set<T> other, boolean onlyThis, boolean onlyOther, boolean both) {
+		return merge(SortedMerge.elements(other, comp), onlyThis, onlyOther, both);
+	}
+
+	// Merges with elements that are already sorted and distinct in this set's order
+	protected AVLSet<T> merge(List<T> others, boolean onlyThis, boolean onlyOther, boolean both) {
+		List<T> l = SortedMerge.merge(SortedMerge.elements(this, comp), others, comp, onlyThis, onlyOther, both);
+		AVLSet<T> s = new AVLSet<T>(comp);
+		s.root = build(l, 0, l.size(), s.root);
+		return s;
+	}
+
+	// A perfectly balanced tree of the sorted elements from lo to hi - 1
+	protected TreeNode<T> build(List<T> l, int lo, int hi, TreeNode<T> empty) {
+		if (lo == hi)
+			return empty;
+		int mid = (lo + hi) >>> 1;
+		return new TreeBranch<T>(build(l, lo, mid, empty), l.get(mid), build(l, mid + 1, hi, empty), comp);
+	}
+
+	public String toString() {
+		return root.toString();
+	}
+}
+
+
+interface TreeNode<T> {
+	int size();
+	int height();
+	boolean contains(T t);
+	TreeNode<T> add(T t);
+}
+
+// a spliterator over the elements of a tree with ranks from lo to hi - 1; since every node knows its
+// size, splitting just halves the range, and it starts from any rank by walking down from the root
+class TreeSpliterator<T> implements Spliterator<T> {
+	protected TreeNode<T> root;
+	protected int lo, hi;
+	protected Comparator<T> comp;
+	protected Deque<TreeBranch<T>> path;	// the nodes above the next element still to visit, made when first needed
+
+	TreeSpliterator(TreeNode<T> root, int lo, int hi, Comparator<T> comp) {
+		this.root = root;
+		this.lo = lo;
+		this.hi = hi;
+		this.comp = comp;
+	}
+
+	public boolean tryAdvance(Consumer<? super T> action) {
+		if (lo >= hi)
+			return false;
+		if (path == null)
+			seek();
+		TreeBranch<T> b = path.pop();
+		action.accept(b.elem);
+		lo++;
+		// The next element is the smallest one in the right subtree, if there is one
+		for (TreeNode<T> n = b.right; n instanceof TreeBranch; n = ((TreeBranch<T>) n).left)
+			path.push((TreeBranch<T>) n);
+		return true;
+	}
+
+	// Builds the path down to the element with rank lo
+	protected void seek() {
+		path = new ArrayDeque<TreeBranch<T>>();
+		TreeNode<T> n = root;
+		int k = lo;
+		while (n instanceof TreeBranch) {
+			TreeBranch<T> b = (TreeBranch<T>) n;
+			int leftSize = b.left.size();
+			if (k < leftSize) {
+				path.push(b);
+				n = b.left;
+			}
+			else if (k == leftSize) {
+				path.push(b);
+				return;
+			}
+			else {
+				k -= leftSize + 1;
+				n = b.right;
+			}
+		}
+	}
+
+	public Spliterator<T> trySplit() {
+		if (hi - lo < 2)
+			return null;
+		int mid = (lo + hi) >>> 1;
+		Spliterator<T> prefix = new TreeSpliterator<T>(root, lo, mid, comp);
+		lo = mid;
+		path = null;
+		return prefix;
+	}
+
+	public long estimateSize() { return hi - lo; }
+
+	public int characteristics() {
+		return ORDERED | SORTED | DISTINCT | SIZED | SUBSIZED | IMMUTABLE;
+	}
+
+	public Comparator<? super T> getComparator() { return comp; }
+}
+
+class TreeEmpty<T> implements TreeNode<T> {
+	protected Comparator<T> comp;
+	// Constructor
+	TreeEmpty(Comparator<T> comp) {
+		this.comp = comp;
+	}
+
+	public int size() { return 0; }
+
+	public int height() { return 0; }
+
+	public boolean contains(T t) { return false; }
+
+	// The new element becomes a leaf, with this empty node on either side
+	public TreeNode<T> add(T t) {
+		return new TreeBranch<T>(this, t, this, comp);
+	}
+
+	public String toString() {
+		return "TreeEmpty";
+	}
+}
+
+class TreeBranch<T> implements TreeNode<T> {
+	protected TreeNode<T> left, right;
+	protected T elem;
+	protected Comparator<T> comp;
+	protected int size, height;		// cached, since the children never change
+
+	TreeBranch(TreeNode<T> left, T elem, TreeNode<T> right, Comparator<T> comp) {
+		this.left = left;
+		this.elem = elem;
+		this.right = right;
+		this.comp = comp;
+		this.size = left.size() + 1 + right.size();
+		this.height = Math.max(left.height(), right.height()) + 1;
+	}
+
+	public int size() { return size; }
+
+	public int height() { return height; }
+
+	public boolean contains(T t) {
+		TreeNode<T> n = this;
+		while (n instanceof TreeBranch) {
+			TreeBranch<T> b = (TreeBranch<T>) n;
+			int num = b.comp.compare(b.elem, t);
+			if (num == 0)
+				return true;
+			// If t is smaller it can only be on the left, otherwise it can only be on the right
+			n = num > 0 ? b.left : b.right;
+		}
+		return false;
+	}
+
+	public TreeNode<T> add(T t) {
 		int num = comp.compare(elem, t);
-		// If the strings are the same, don't add it
+		// If the element is already here, the tree doesn't change
 		if (num == 0)
 			return this;
-		// If s is smaller, add s before the current node
-		else if (num > 0)
-			return new Element<T>(t, this, comp);
-		// If s is greater, continue traversing the list
-		else
-			return new Element<T>(elem, next.add(t), comp);
+		else if (num > 0) {
+			TreeNode<T> l = left.add(t);
+			return l == left ? this : balance(l, elem, right, comp);
+		}
+		else {
+			TreeNode<T> r = right.add(t);
+			return r == right ? this : balance(left, elem, r, comp);
+		}
 	}
 
-    public String toString() {
-		return "Element(" + elem + ", " + next.toString() + ")";
+	// Builds a node from subtrees whose heights differ by at most 2, rotating if they differ by 2
+	static <T> TreeNode<T> balance(TreeNode<T> l, T elem, TreeNode<T> r, Comparator<T> comp) {
+		if (l.height() > r.height() + 1) {
+			TreeBranch<T> lb = (TreeBranch<T>) l;
+			// The left subtree's outer side is taller: rotate right
+			if (lb.left.height() >= lb.right.height())
+				return new TreeBranch<T>(lb.left, lb.elem, new TreeBranch<T>(lb.right, elem, r, comp), comp);
+			// Its inner side is taller: rotate that up through both levels
+			TreeBranch<T> lr = (TreeBranch<T>) lb.right;
+			return new TreeBranch<T>(new TreeBranch<T>(lb.left, lb.elem, lr.left, comp), lr.elem,
+									 new TreeBranch<T>(lr.right, elem, r, comp), comp);
+		}
+		if (r.height() > l.height() + 1) {
+			TreeBranch<T> rb = (TreeBranch<T>) r;
+			if (rb.right.height() >= rb.left.height())
+				return new TreeBranch<T>(new TreeBranch<T>(l, elem, rb.left, comp), rb.elem, rb.right, comp);
+			TreeBranch<T> rl = (TreeBranch<T>) rb.left;
+			return new TreeBranch<T>(new TreeBranch<T>(l, elem, rl.left, comp), rl.elem,
+									 new TreeBranch<T>(rl.right, rb.elem, rb.right, comp), comp);
+		}
+		return new TreeBranch<T>(l, elem, r, comp);
+	}
+
+	public String toString() {
+		return "TreeBranch(" + left + ", " + elem + ", " + right + ")";
+	}
+}
+
+
+// a thread-safe Set<T> over the same persistent AVL tree: since no version of the tree ever changes,
+// readers just use whichever root is current without locking, and writers build a new version and
+// publish it with compareAndSet, retrying if another writer published first
+class ConcurrentAVLSet<T> implements Set<T> {
+	protected AtomicReference<TreeNode<T>> root;
+	protected Comparator<T> comp;
+	// How many times addAll tries to publish a whole merged tree before adding the elements one at a time
+	protected static final int BULK_ATTEMPTS = 4;
+
+	// Constructor
+	ConcurrentAVLSet(Comparator<T> comp) {
+		root = new AtomicReference<TreeNode<T>>(new TreeEmpty<T>(comp));
+		this.comp = comp;
+	}
+
+	public int size() {
+		return root.get().size();
+	}
+
+	public boolean contains(T t) {
+		return root.get().contains(t);
+	}
+
+	public void add(T t) {
+		while (true) {
+			TreeNode<T> current = root.get();
+			TreeNode<T> next = current.add(t);
+			// Adding an element that is already there leaves the tree as it is
+			if (next == current || root.compareAndSet(current, next))
+				return;
+		}
+	}
+
+	// A consistent copy of the set as it is now, in O(1) since it shares the current tree
+	public AVLSet<T> snapshot() {
+		return new AVLSet<T>(root.get(), comp);
+	}
+
+	public Comparator<T> comparator() {
+		return comp;
+	}
+
+	public void forEach(Consumer<? super T> action) {
+		snapshot().forEach(action);
+	}
+
+	// Iteration sees the set as it was when it started
+	public Iterator<T> iterator() {
+		return snapshot().iterator();
+	}
+
+	public Spliterator<T> spliterator() {
+		return snapshot().spliterator();
+	}
+
+	public void addAll(Set<T> other) {
+		// Gather the other set's elements once, however often the merge has to be redone
+		List<T> others = SortedMerge.elements(other, comp);
+		for (int attempt = 0; attempt < BULK_ATTEMPTS; attempt++) {
+			TreeNode<T> current = root.get();
+			int n = current.size();
+			if (AVLSet.addSeparately(n, others.size()))
+				break;
+			TreeNode<T> merged = new AVLSet<T>(current, comp).merge(others, true, true, true).root;
+			if (merged.size() == n || root.compareAndSet(current, merged))
+				return;
+		}
+		// Adds that lost the race to other writers: an add only copies O(log n) nodes, so one at a time they
+		// keep making progress however busy the other writers are
+		for (T t : others)
+			add(t);
+	}
+
+	public AVLSet<T> union(Set<T> other) {
+		return snapshot().union(other);
+	}
+
+	public AVLSet<T> intersection(Set<T> other) {
+		return snapshot().intersection(other);
+	}
+
+	public AVLSet<T> difference(Set<T> other) {
+		return snapshot().difference(other);
+	}
+
+	public String toString() {
+		return root.get().toString();
+	}
+}
+
+
+// sets of primitive values, which store their elements unboxed and need no comparator
+interface IntSet {
+	int size();
+	boolean contains(int i);
+	void add(int i);
+}
+
+interface LongSet {
+	int size();
+	boolean contains(long l);
+	void add(long l);
+}
+
+interface DoubleSet {
+	int size();
+	boolean contains(double d);
+	void add(double d);
+}
+
+// an implementation of IntSet as an open-addressed hash table: elements live directly in an int array,
+// which is kept at most 3/4 full, and a collision moves on to the next slot
+class HashIntSet implements IntSet {
+	protected int[] slots = new int[16];	// 0 marks an empty slot
+	protected boolean hasZero;				// so 0 itself is tracked separately
+	protected int size;
+
+	public int size() { return size; }
+
+	public boolean contains(int i) {
+		if (i == 0)
+			return hasZero;
+		int mask = slots.length - 1;
+		for (int k = hash(i) & mask; slots[k] != 0; k = (k + 1) & mask)
+			if (slots[k] == i)
+				return true;
+		return false;
+	}
+
+	public void add(int i) {
+		if (i == 0) {
+			if (!hasZero)
+				size++;
+			hasZero = true;
+			return;
+		}
+		if (insert(slots, i)) {
+			size++;
+			if (size * 4 > slots.length * 3)
+				grow();
+		}
+	}
+
+	// The elements in increasing order
+	public int[] toArray() {
+		int[] a = new int[size];
+		int n = 0;
+		if (hasZero)
+			a[n++] = 0;
+		for (int i : slots)
+			if (i != 0)
+				a[n++] = i;
+		Arrays.sort(a);
+		return a;
+	}
+
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	// Puts i in the first free slot from its hash on, returning false if it was already there
+	protected static boolean insert(int[] slots, int i) {
+		int mask = slots.length - 1;
+		int k = hash(i) & mask;
+		for (; slots[k] != 0; k = (k + 1) & mask)
+			if (slots[k] == i)
+				return false;
+		slots[k] = i;
+		return true;
+	}
+
+	protected void grow() {
+		int[] bigger = new int[slots.length * 2];
+		for (int i : slots)
+			if (i != 0)
+				insert(bigger, i);
+		slots = bigger;
+	}
+
+	// Spreads the bits so that runs of consecutive values don't fill runs of consecutive slots
+	protected static int hash(int i) {
+		int h = i * 0x9E3779B9;
+		return h ^ (h >>> 16);
 	}
-}
\ No newline at end of file
+}
+
+// an implementation of LongSet as an open-addressed hash table, like HashIntSet
+class HashLongSet implements LongSet {
+	protected long[] slots = new long[16];	// 0 marks an empty slot
+	protected boolean hasZero;				// so 0 itself is tracked separately
+	protected int size;
+
+	public int size() { return size; }
+
+	public boolean contains(long l) {
+		if (l == 0)
+			return hasZero;
+		int mask = slots.length - 1;
+		for (int k = hash(l) & mask; slots[k] != 0; k = (k + 1) & mask)
+			if (slots[k] == l)
+				return true;
+		return false;
+	}
+
+	public void add(long l) {
+		if (l == 0) {
+			if (!hasZero)
+				size++;
+			hasZero = true;
+			return;
+		}
+		if (insert(slots, l)) {
+			size++;
+			if (size * 4 > slots.length * 3)
+				grow();
+		}
+	}
+
+	// The elements in increasing order
+	public long[] toArray() {
+		long[] a = new long[size];
+		int n = 0;
+		if (hasZero)
+			a[n++] = 0;
+		for (long l : slots)
+			if (l != 0)
+				a[n++] = l;
+		Arrays.sort(a);
+		return a;
+	}
+
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	// Puts l in the first free slot from its hash on, returning false if it was already there
+	protected static boolean insert(long[] slots, long l) {
+		int mask = slots.length - 1;
+		int k = hash(l) & mask;
+		for (; slots[k] != 0; k = (k + 1) & mask)
+			if (slots[k] == l)
+				return false;
+		slots[k] = l;
+		return true;
+	}
+
+	protected void grow() {
+		long[] bigger = new long[slots.length * 2];
+		for (long l : slots)
+			if (l != 0)
+				insert(bigger, l);
+		slots = bigger;
+	}
+
+	protected static int hash(long l) {
+		long h = l * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
+
+// an implementation of DoubleSet that keeps the bits of each double in a HashLongSet, so doubles are the
+// same element exactly when Double.compare says they are (0.0 and -0.0 differ, all NaNs are one element)
+class HashDoubleSet implements DoubleSet {
+	protected HashLongSet bits = new HashLongSet();
+
+	public int size() { return bits.size(); }
+
+	public boolean contains(double d) { return bits.contains(Double.doubleToLongBits(d)); }
+
+	public void add(double d) { bits.add(Double.doubleToLongBits(d)); }
+
+	// The elements in increasing order, by Double.compare
+	public double[] toArray() {
+		long[] b = bits.toArray();
+		double[] a = new double[b.length];
+		for (int i = 0; i < b.length; i++)
+			a[i] = Double.longBitsToDouble(b[i]);
+		Arrays.sort(a);
+		return a;
+	}
+
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
+
+
+// an implementation of StringSet using a compressed trie: each edge is labelled with a string, so
+// elements with a common prefix share the nodes for it, and finding an element only compares its own
+// characters, however many other elements there are
+class TrieStringSet implements StringSet {
+	protected TrieNode root = new TrieNode("");
+	protected int size;
+
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(String s) {
+		TrieNode n = root;
+		int i = 0;
+		while (i < s.length()) {
+			TrieNode child = n.child(s.charAt(i));
+			// The rest of s has to start with the whole label of the edge it follows
+			if (child == null || !s.startsWith(child.label, i))
+				return false;
+			i += child.label.length();
+			n = child;
+		}
+		return n.terminal;
+	}
+
+	public void add(String s) {
+		TrieNode n = root;
+		int i = 0;
+		while (i < s.length()) {
+			TrieNode child = n.child(s.charAt(i));
+			// No edge starts with the next character: the rest of s becomes a new leaf
+			if (child == null) {
+				TrieNode leaf = new TrieNode(s.substring(i));
+				leaf.terminal = true;
+				n.addChild(leaf);
+				size++;
+				return;
+			}
+			int common = 1;
+			while (common < child.label.length() && i + common < s.length() &&
+				   child.label.charAt(common) == s.charAt(i + common))
+				common++;
+			// s leaves the edge partway along: split it where they differ
+			if (common < child.label.length()) {
+				TrieNode mid = new TrieNode(child.label.substring(0, common));
+				child.label = child.label.substring(common);
+				mid.addChild(child);
+				n.replaceChild(mid);
+				child = mid;
+			}
+			i += common;
+			n = child;
+		}
+		if (!n.terminal) {
+			n.terminal = true;
+			size++;
+		}
+	}
+
+	public List<String> prefixMatches(String prefix) {
+		List<String> l = new ArrayList<String>();
+		// Find the node where the prefix ends, which may be partway along an edge
+		TrieNode n = root;
+		int i = 0;
+		while (i < prefix.length()) {
+			TrieNode child = n.child(prefix.charAt(i));
+			if (child == null)
+				return l;
+			if (child.label.length() >= prefix.length() - i) {
+				if (!child.label.startsWith(prefix.substring(i)))
+					return l;
+			}
+			else if (!prefix.startsWith(child.label, i))
+				return l;
+			i += child.label.length();
+			n = child;
+		}
+		new TrieIterator(n, prefix.substring(0, i - n.label.length())).forEachRemaining(l::add);
+		return l;
+	}
+
+	public Iterator<String> iterator() {
+		return new TrieIterator(root, "");
+	}
+
+	public Spliterator<String> spliterator() {
+		return Spliterators.spliterator(iterator(), size,
+			Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL);
+	}
+
+	public String toString() {
+		return "Trie(" + String.join(", ", prefixMatches("")) + ")";
+	}
+}
+
+// iterates in order over the elements below a node of a trie, keeping the nodes still to visit on a stack
+class TrieIterator implements Iterator<String> {
+	protected Deque<TrieNode> nodes = new ArrayDeque<TrieNode>();
+	protected Deque<String> paths = new ArrayDeque<String>();	// what the nodes above each one spell
+	protected String next;
+
+	// path spells out everything above n
+	TrieIterator(TrieNode n, String path) {
+		nodes.push(n);
+		paths.push(path);
+		advance();
+	}
+
+	public boolean hasNext() { return next != null; }
+
+	public String next() {
+		if (next == null)
+			throw new NoSuchElementException();
+		String s = next;
+		advance();
+		return s;
+	}
+
+	// Visits nodes until one that ends an element
+	protected void advance() {
+		next = null;
+		while (next == null && !nodes.isEmpty()) {
+			TrieNode m = nodes.pop();
+			String s = paths.pop() + m.label;
+			// An element comes before the longer elements that extend it
+			if (m.terminal)
+				next = s;
+			for (int c = m.count - 1; c >= 0; c--) {
+				nodes.push(m.children[c]);
+				paths.push(s);
+			}
+		}
+	}
+}
+
+// a node of a TrieStringSet, with its children kept in order of the first character of their labels
+class TrieNode {
+	protected String label;				// the characters on the edge from the parent
+	protected boolean terminal;			// whether the path down to here spells an element
+	// Most nodes are leaves, so they all share these until they get a child
+	static final char[] NO_FIRSTS = new char[0];
+	static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+	protected char[] firsts = NO_FIRSTS;	// the first character of each child's label
+	protected TrieNode[] children = NO_CHILDREN;
+	protected int count;
+
+	TrieNode(String label) {
+		this.label = label;
+	}
+
+	// The child whose label starts with c, or null
+	TrieNode child(char c) {
+		int k = Arrays.binarySearch(firsts, 0, count, c);
+		return k >= 0 ? children[k] : null;
+	}
+
+	void addChild(TrieNode child) {
+		char c = child.label.charAt(0);
+		int k = -(Arrays.binarySearch(firsts, 0, count, c) + 1);
+		if (count == firsts.length) {
+			// Most nodes have few children, so grow slowly
+			firsts = Arrays.copyOf(firsts, count + 1 + count / 2);
+			children = Arrays.copyOf(children, firsts.length);
+		}
+		System.arraycopy(firsts, k, firsts, k + 1, count - k);
+		System.arraycopy(children, k, children, k + 1, count - k);
+		firsts[k] = c;
+		children[k] = child;
+		count++;
+	}
+
+	// Puts child in place of the child whose label starts with the same character
+	void replaceChild(TrieNode child) {
+		children[Arrays.binarySearch(firsts, 0, count, child.label.charAt(0))] = child;
+	}
+}